@@ -7,7 +7,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardWatchEventKinds;
@@ -85,12 +87,21 @@ public class FileWatcherPJC extends VBean implements Runnable {
     public static final ID SENDACTION2OTHERS = ID.registerProperty("SendAction2Others");
     public static final ID SENDRESULT2OTHERS = ID.registerProperty("SendResult2Others");
     
+    // "window" :: receive window in messages, 0 = no flow control
+    public static final ID SETFLOWWINDOW     = ID.registerProperty("SetFlowWindow");
+    // "bytes" :: deflate larger payloads into a sidecar blob, 0 = off
+    public static final ID SETCOMPRESSTHRESHOLD = ID.registerProperty("SetCompressThreshold");
+    
     public static final ID OS              = ID.registerProperty("GetOS");
     public static final ID OSVERSION       = ID.registerProperty("GetOSVERSION");
     public static final ID PJCVERSION      = ID.registerProperty("GetPJCVERSION");
     public static final ID JAVAOS          = ID.registerProperty("GetJAVAOS");
     public static final ID JAVAVERSION     = ID.registerProperty("GetJAVAVERSION");
     public static final ID JAVATEMPDIR     = ID.registerProperty("GetJAVATEMPDIR");   
+    public static final ID FLOWWINDOW      = ID.registerProperty("GetFlowWindow");
+    public static final ID FLOWSTALLS      = ID.registerProperty("GetFlowStalls");
+    public static final ID FLOWSTALLTIME   = ID.registerProperty("GetFlowStallTime");
+    public static final ID COMPRESSTHRESHOLD = ID.registerProperty("GetCompressThreshold");
     /* --- EO version & logger  --- */
    
     /* --- BO Parameter values --- */
@@ -107,7 +118,7 @@ public class FileWatcherPJC extends VBean implements Runnable {
     private transient Path      mWatchPath;
 
     // watcher root dir
-    private static final String FORMSTEMPDIR = "formswatch\\";
+    private static final String FORMSTEMPDIR = "formswatch";
     private static final String DEFAULTSUBDIR  = "forms";
     
     /* specify file types for watching                         */
@@ -135,6 +146,16 @@ public class FileWatcherPJC extends VBean implements Runnable {
     private String                        mMessage      = "";
     private final transient Object        mPausedLock   = new Object();
 
+    // flow control :: receive window, receiver while watching, own sender
+    private volatile int                  mFlowWindow   = FlowControl.DEFAULTWINDOW;
+    private volatile boolean              mWatching     = false;
+    private transient volatile FlowControl.Receiver mFlowReceiver = null;
+    private final transient FlowControl.Sender mFlowSender = new FlowControl.Sender();
+
+    // payload decoding ( sidecar blobs ) :: reused buffer; send threshold of this bean
+    private final transient PayloadCodec  mCodec        = new PayloadCodec();
+    private volatile int                  mCompressThreshold = 0;
+
     @Override
     public void init(IHandler handler) {
         if (handler != null) {
@@ -207,6 +228,32 @@ public class FileWatcherPJC extends VBean implements Runnable {
             }
             return true;
         } // EO SENDRESULT2OTHERS
+        else if (SETFLOWWINDOW.getName().equalsIgnoreCase(pStr)) {
+            if (val != null) {
+                Ilog.logFine("--- SETFLOWWINDOW selected --- : " + val);
+                try {
+                    setFlowWindow(Integer.parseInt(val.trim()));
+                } catch (NumberFormatException e) {
+                    Ilog.logException("$$$ SETFLOWWINDOW $$$ : " + val, e);
+                }
+            } else {
+                Ilog.logError("$$$ SETFLOWWINDOW val is null ! $$$");
+            }
+            return true;
+        } // EO SETFLOWWINDOW
+        else if (SETCOMPRESSTHRESHOLD.getName().equalsIgnoreCase(pStr)) {
+            if (val != null) {
+                Ilog.logFine("--- SETCOMPRESSTHRESHOLD selected --- : " + val);
+                try {
+                    mCompressThreshold = Math.max(0, Integer.parseInt(val.trim()));
+                } catch (NumberFormatException e) {
+                    Ilog.logException("$$$ SETCOMPRESSTHRESHOLD $$$ : " + val, e);
+                }
+            } else {
+                Ilog.logError("$$$ SETCOMPRESSTHRESHOLD val is null ! $$$");
+            }
+            return true;
+        } // EO SETCOMPRESSTHRESHOLD
    
         else {
             Ilog.logError("$$$ SetProperty - Parameter: "+ pStr);
@@ -233,6 +280,14 @@ public class FileWatcherPJC extends VBean implements Runnable {
             return Version.getJavaVersion();
         } else if (JAVATEMPDIR.getName().equalsIgnoreCase(pStr)) {
             return Version.getJavaTempDir();
+        } else if (FLOWWINDOW.getName().equalsIgnoreCase(pStr)) {
+            return Integer.toString(mFlowWindow);
+        } else if (FLOWSTALLS.getName().equalsIgnoreCase(pStr)) {
+            return Long.toString(mFlowSender.getStallCount());
+        } else if (FLOWSTALLTIME.getName().equalsIgnoreCase(pStr)) {
+            return Long.toString(mFlowSender.getStallMillis());
+        } else if (COMPRESSTHRESHOLD.getName().equalsIgnoreCase(pStr)) {
+            return Integer.toString(mCompressThreshold);
         }
         // --- pid not found ! ---
         Ilog.logInfo(DEFAULTMESSAGE);
@@ -277,7 +332,7 @@ public class FileWatcherPJC extends VBean implements Runnable {
             // at first stop watching then from there killThread() !   
             // --------------------------------------------------------
             Ilog.logFine("--- SETSTOPSERVER :: EOwatchService.watch selected. ---");
-                FileWatcherPJC.wrtFile(mWatchDir + "\\" + EOSERVICE, "FINISHED.");
+                FileWatcherPJC.wrtFile(mWatchDir + EOSERVICE, "FINISHED.");
             } catch (IOException e) {
                 Ilog.logException("$$$ SETSTOPSERVER(wrtFile() => EOwatch) $$$", e);
             }
@@ -317,13 +372,10 @@ public class FileWatcherPJC extends VBean implements Runnable {
 
     // fname ACTION|Para1|Para2
     private void action2Forms(String fname) throws IOException {
-        try {
-            FileInputStream inpStream = new FileInputStream(mWatchDir + fname);
-            BufferedReader bufRead = new BufferedReader(
-                    new InputStreamReader(inpStream));
+        try (BufferedReader bufRead = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(mWatchDir + fname)))) {
             String input = bufRead.readLine();
             sendAction2Forms(input);          
-            inpStream.close();
             Ilog.logFine("--- EO action2Forms(String fname) ---");           
         } catch (IOException e) {
             Ilog.logException("$$$ Action2Forms(InputStream) $$$ : " + fname, e);
@@ -349,37 +401,182 @@ public class FileWatcherPJC extends VBean implements Runnable {
 
     // fname ACTION|Para1|Para2
     private void result2Forms(String fname) throws IOException {
-        try {
-            FileInputStream inpStream = new FileInputStream(mWatchDir + fname);
-            BufferedReader bufRead = new BufferedReader(
-                    new InputStreamReader(inpStream));
+        try (BufferedReader bufRead = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(mWatchDir + fname)))) {
             String input = bufRead.readLine();
             sendResult2Forms(input);
-            inpStream.close();
             Ilog.logFine("--- EO result2Forms(String fname) ---");
         } catch (IOException e) {
             Ilog.logException("$$$ Result2Forms(InputStream) $$$ : " + fname, e);
         }
     }
 
+    // fname <Channel>.<SenderId>.<SeqNo>.watch :: per sender in SeqNo order
+    private synchronized void flow2Forms(FlowControl.Receiver receiver, FlowControl.SeqName name) {
+        Path file = mWatchPath.resolve(name.mFileName);
+        try {
+            if (!Files.exists(file)) {
+                return;  // CREATE & MODIFY of an already consumed file
+            }
+            long next = receiver.next(name);
+            if (!receiver.accept(name)) {
+                Ilog.logError("$$$ flow2Forms(outside window) $$$ : " + name.mFileName);
+                sendWatch2Forms("$$$ Flow window violation $$$:" + name.mFileName);
+                PayloadCodec.deleteBlob(file);
+                Files.deleteIfExists(file);
+                return;
+            }
+            // earlier SeqNo first :: files appear in SeqNo order, a missing one is lost
+            for (long seq = next; seq < name.mSeq; seq++) {
+                FlowControl.SeqName earlier = receiver.find(name.mSender, seq);
+                if (earlier == null) {
+                    Ilog.logError("$$$ flow2Forms(sequence gap) $$$ : " + name.mSender + "." + seq);
+                    sendWatch2Forms("$$$ Flow sequence gap $$$:" + name.mSender + "." + seq);
+                    receiver.consumed(name.mSender, seq);
+                } else if (!seq2Forms(receiver, earlier)) {
+                    return;  // retried with the next file of this sender
+                }
+            }
+            seq2Forms(receiver, name);
+        } catch (IOException e) {
+            Ilog.logException("$$$ flow2Forms $$$ : " + name.mFileName, e);
+        }
+    }
+
+    // all sequenced files in the watch dir :: after OVERFLOW and before close
+    private synchronized void rescanFlow(FlowControl.Receiver receiver) {
+        try {
+            for (FlowControl.SeqName name : receiver.scan()) {
+                flow2Forms(receiver, name);
+            }
+        } catch (IOException e) {
+            Ilog.logException("$$$ rescanFlow $$$ : " + mWatchDir, e);
+        }
+    }
+
+    // hand over, delete, replenish :: true if consumed ( receiver null = former Epoch )
+    private boolean seq2Forms(FlowControl.Receiver receiver, FlowControl.SeqName name) {
+        Path file = mWatchPath.resolve(name.mFileName);
+        try {
+            String input;
+            try (BufferedReader bufRead = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                input = mCodec.decode(file, bufRead.readLine());
+            } catch (IOException | RuntimeException e) {
+                // drop this message only :: .watch & .blob, keep the window moving
+                Ilog.logException("$$$ seq2Forms(decode) $$$ : " + name.mFileName, e);
+                sendWatch2Forms("$$$ Payload decode failed $$$:" + name.mFileName);
+                PayloadCodec.deleteBlob(file);
+                Files.deleteIfExists(file);
+                if (receiver != null) {
+                    receiver.consumed(name.mSender, name.mSeq);
+                }
+                return true;
+            }
+            if (ACTION2FORMS.equals(name.mChannel)) {
+                sendAction2Forms(input);
+            } else {
+                sendResult2Forms(input);
+            }
+            Files.deleteIfExists(file);
+            if (receiver != null) {
+                receiver.consumed(name.mSender, name.mSeq);
+            }
+            Ilog.logFine("--- EO seq2Forms(String fname) ---");
+            return true;
+        } catch (IOException e) {
+            Ilog.logException("$$$ seq2Forms $$$ : " + name.mFileName, e);
+            return false;
+        }
+    }
+
+    private synchronized void setFlowWindow(int window) {
+        mFlowWindow = Math.max(0, window);
+        // only a running watcher advertises credits
+        if (!mWatching) {
+            return;
+        }
+        if (mFlowWindow == 0) {
+            // pending files first, later ones come plain
+            if (mFlowReceiver != null) {
+                rescanFlow(mFlowReceiver);
+            }
+            closeFlowControl();
+        } else if (mFlowReceiver == null) {
+            openFlowControl();
+        } else {
+            try {
+                mFlowReceiver.setWindow(mFlowWindow);
+            } catch (IOException e) {
+                Ilog.logException("$$$ setFlowWindow $$$ : " + mWatchDir, e);
+            }
+        }
+    }
+
+    private synchronized void openFlowControl() {
+        if (mFlowWindow > 0) {
+            FlowControl.Receiver receiver = new FlowControl.Receiver(mWatchDir, mFlowWindow,
+                    ACTION2FORMS, RESULT2FORMS);
+            try {
+                // files of a former Epoch ( stop, window 0 ) before senders restart at SeqNo 0
+                for (FlowControl.SeqName name : receiver.scan()) {
+                    seq2Forms(null, name);
+                }
+                receiver.open();
+                mFlowReceiver = receiver;
+            } catch (IOException e) {
+                Ilog.logException("$$$ openFlowControl $$$ : " + mWatchDir, e);
+                receiver.close();
+            }
+        }
+    }
+
+    private synchronized void closeFlowControl() {
+        if (mFlowReceiver != null) {
+            mFlowReceiver.close();
+            mFlowReceiver = null;
+        }
+    }
+
     // send Action to destination subdir : action|result
-    private static synchronized void sendFile(String type, String value) {
+    private void sendFile(String type, String value) {
         String[] split;
         split = value.split("\\|", 2);
         String dir;
         try {
-            dir = System.getProperty("java.io.tmpdir")+FORMSTEMPDIR+"\\"+split[0];
-            OutputStreamWriter writer = new OutputStreamWriter(
-                    new FileOutputStream(dir + "\\" + type), "UTF-8");
-            // Timestamp "timestamp = new Timestamp(System.currentTimeMillis());"
-            writer.write(split[1]); 
-            writer.close();
+            dir = getWatchRoot() + split[0];
+            // flow controlled destination => sequenced file, else plain file
+            int sent = mFlowSender.send(dir, type, split[1], mCompressThreshold);
+            if (sent == FlowControl.PLAIN) {
+                wrtPlain(dir, type, split[1]);
+            } else if (sent == FlowControl.FULL) {
+                // not sent :: Forms may retry later
+                Ilog.logWarning("$$$ sendFile(window full) $$$ : " + type + "|" + split[0]);
+                sendWatch2Forms("$$$ Flow window full $$$:" + split[0] + "|" + type);
+                return;
+            }
             Ilog.logFine("--- EO sendFile(String type, String value) ---");
         } catch (IOException e) {
             Ilog.logException("$$$ sendFile(String type, String value) $$$ : " + type+"|"+ value, e);
+            sendWatch2Forms("$$$ Send failed $$$:" + split[0] + "|" + type);
         }
     } 
+
+    private static synchronized void wrtPlain(String dir, String type, String payload) throws IOException {
+        try (OutputStreamWriter writer = new OutputStreamWriter(
+                new FileOutputStream(dir + File.separator + type), "UTF-8")) {
+            // Timestamp "timestamp = new Timestamp(System.currentTimeMillis());"
+            // plain files are never compressed :: a fixed sidecar name would race
+            writer.write(payload); 
+        }
+    }
     
+    // watcher root dir :: <java.io.tmpdir>/formswatch/ , with or without
+    // trailing separator in java.io.tmpdir (Windows has one, Linux not).
+    private static String getWatchRoot() {
+        return Paths.get(System.getProperty("java.io.tmpdir"), FORMSTEMPDIR)
+                + File.separator;
+    }
+
     private static synchronized void createDir(String directory) {
         boolean bool = false;
         try {
@@ -432,10 +629,9 @@ public class FileWatcherPJC extends VBean implements Runnable {
             try {
                 watchService = FileSystems.getDefault().newWatchService();
                 // watching dir handling.
-                mWatchDir = System.getProperty("java.io.tmpdir");
-                mWatchDir = mWatchDir + FORMSTEMPDIR;
+                mWatchDir = getWatchRoot();
                 if (mSubDir != "") {
-                    mWatchDir = mWatchDir + mSubDir + "\\";
+                    mWatchDir = mWatchDir + mSubDir + File.separator;
                 }
                 // get final path.
                 createDir(mWatchDir);
@@ -443,11 +639,19 @@ public class FileWatcherPJC extends VBean implements Runnable {
                 mWatchPath = Paths.get(mWatchDir);
 
                 // <delete> & <create files> does always include <modify files>!
+                // ( not for renamed sequenced files on Linux => ENTRY_CREATE )
                 WatchKey key = mWatchPath.register(watchService,
-                        // StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_CREATE,
                         // StandardWatchEventKinds.ENTRY_DELETE,
                         StandardWatchEventKinds.ENTRY_MODIFY);
 
+                // advertise only after register() :: no event can be missed
+                synchronized (this) {
+                    mWatching = true;
+                    openFlowControl();
+                }
+                PayloadCodec.advertise(mWatchDir);
+
                 // -- main watcher inner loop ---
                 while ((!mPauseThread)&&(!mKillThread)) {
                     Ilog.logInfo("--- ENTER BO watchService.take() ---");                    
@@ -469,14 +673,28 @@ public class FileWatcherPJC extends VBean implements Runnable {
                     
                     for (WatchEvent<?> watchEvent : keys) {
                         Kind<?> watchEventKind = watchEvent.kind();
-                        tContext = watchEvent.context().toString();
-                        tFile = mWatchPath.resolve(tContext);
                         if (watchEventKind == StandardWatchEventKinds.OVERFLOW) {
-                            sendWatch2Forms("$$$ File event overflow $$$:" + tContext);
-                            continue;
-                        } 
+                            // no context :: events got lost, key.reset() below
+                            sendWatch2Forms("$$$ File event overflow $$$:" + watchEvent.count());
+                            tContext = null;
+                            tFile = null;
+                            if (mFlowReceiver != null) {
+                                rescanFlow(mFlowReceiver);
+                            }
+                        } else {
+                            tContext = watchEvent.context().toString();
+                            tFile = mWatchPath.resolve(tContext);
+                        }
+                        //  --- flow controlled sequenced files (created or modified) . ---
+                        FlowControl.Receiver receiver = mFlowReceiver;
+                        FlowControl.SeqName seqName = ((receiver != null) && (tContext != null))
+                                ? FlowControl.SeqName.parse(tContext, ACTION2FORMS, RESULT2FORMS)
+                                : null;
+                        if (seqName != null) {
+                            flow2Forms(receiver, seqName);
+                        }
                         //  --- only modified and filtered files . ---
-                        if  ((isCorrectFileType(tFile)) &&
+                        else if  ((tFile != null) && (isCorrectFileType(tFile)) &&
                              (watchEventKind == StandardWatchEventKinds.ENTRY_MODIFY) &&
                              (tContext != null)) {                                 
                             switch (tContext) {
@@ -515,6 +733,16 @@ public class FileWatcherPJC extends VBean implements Runnable {
                                 
             } catch (IOException e) {
                 Ilog.logException("$$$ watchService $$$: ", e);
+            } finally {
+                // no credits for a stopped watcher, also on errors
+                synchronized (this) {
+                    mWatching = false;
+                    closeFlowControl();
+                }
+                if (mWatchDir != null) {
+                    PayloadCodec.withdraw(mWatchDir);
+                }
+                mCodec.end();
             }   // EO try/catch : watchservice .
                            
             // --- tell Forms that a message is incoming ---
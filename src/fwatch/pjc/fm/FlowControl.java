@@ -0,0 +1,482 @@
+package fwatch.pjc.fm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Credit based flow control between File Watcher Services ( opt-in ):
+ * -----------------------------------------------------------------------------
+ * With SetFlowWindow > 0 a receiver advertises the control file
+ * 'FlowCredits.ctl' in its watch dir ::  CREDIT|Initial|Epoch .
+ * Epoch changes with every (re)start of the receiver, Initial are the
+ * credits of a sender it does not know yet.
+ *
+ * Every sender has its own SenderId, sequence and credit space and writes
+ * every message into its own file ( '.tmp' in the sub dir 'flowtmp' and
+ * renamed, so a message is one watch event ) :
+ *   Action2Forms.<SenderId>.<SeqNo>.watch   ( Result2Forms.. )
+ * It starts with SeqNo 0 and Limit = Initial per Epoch, later the receiver
+ * replenishes its credits in 'FlowCredits.<SenderId>.ctl' ::
+ *   CREDIT|Limit|Window|Epoch    ( Limit <= next expected SeqNo + Window ).
+ * A sender never writes SeqNo >= Limit : the message is refused instead
+ * ( "window full" ), nothing blocks the caller.
+ *
+ * The receiver consumes the files of a sender in SeqNo order and never
+ * passes a SeqNo it has not consumed; a SeqNo is only skipped ( and
+ * reported ) if its file is missing while a later one exists. All senders
+ * together get at most MAXCREDITS outstanding credits, so one WatchKey
+ * never overflows; after an OVERFLOW and at open() the dir is rescanned.
+ * Senders idle for SENDERIDLEMS are forgotten, their next file restarts
+ * the credit space at its SeqNo.
+ *
+ * Destinations without 'FlowCredits.ctl' get the plain overwritten
+ * 'Action2Forms.watch' files as before, so plain peers keep working.
+ * -----------------------------------------------------------------------------
+ */
+final class FlowControl {
+
+    static final String CREDITFILE    = "FlowCredits";
+    static final String CREDIT        = "CREDIT";
+    static final String TMPDIR        = "flowtmp";
+    static final int    DEFAULTWINDOW = 0;   // opt-in
+
+    /* Sender.send() results */
+    static final int SENT  = 0;
+    static final int PLAIN = 1;
+    static final int FULL  = 2;
+
+    // JDK WatchKey queues 512 events, a message costs 1 ( 2 with a blob )
+    static final int  MAXCREDITS     = 128;
+    static final int  INITIALCREDITS = 8;
+    static final long SENDERIDLEMS   = 10 * 60 * 1000L;
+
+    private static final String CTLEXT   = ".ctl";
+    private static final String WATCHEXT = ".watch";
+    private static final String TMPEXT   = ".tmp";
+    private static final int    MAXIDLEN = 32;
+
+    private FlowControl() {
+    }
+
+    /* --- sequenced file name :: <Channel>.<SenderId>.<SeqNo>.watch --- */
+    static final class SeqName {
+        final String mChannel;   // e.g. "Action2Forms.watch"
+        final String mSender;
+        final long   mSeq;
+        final String mFileName;
+
+        private SeqName(String channel, String sender, long seq) {
+            mChannel  = channel;
+            mSender   = sender;
+            mSeq      = seq;
+            mFileName = channel.substring(0, channel.length() - WATCHEXT.length())
+                    + "." + sender + "." + seq + WATCHEXT;
+        }
+
+        // null if fname is no sequenced file of one of the channels.
+        static SeqName parse(String fname, String... channels) {
+            if (!fname.endsWith(WATCHEXT)) {
+                return null;
+            }
+            String[] split = fname.substring(0, fname.length() - WATCHEXT.length()).split("\\.");
+            if ((split.length != 3) || !isId(split[1]) || !isSeq(split[2])) {
+                return null;
+            }
+            for (String channel : channels) {
+                if (channel.equals(split[0] + WATCHEXT)) {
+                    SeqName name = new SeqName(channel, split[1], Long.parseLong(split[2]));
+                    // no leading zeros :: one file name per SeqNo
+                    return name.mFileName.equals(fname) ? name : null;
+                }
+            }
+            return null;
+        }
+
+        private static boolean isId(String id) {
+            if (id.isEmpty() || (id.length() > MAXIDLEN)) {
+                return false;
+            }
+            for (int i = 0; i < id.length(); i++) {
+                if (!Character.isLetterOrDigit(id.charAt(i)) || (id.charAt(i) > 'z')) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isSeq(String seq) {
+            if (seq.isEmpty() || (seq.length() > 18)) {
+                return false;
+            }
+            for (int i = 0; i < seq.length(); i++) {
+                if (!Character.isDigit(seq.charAt(i)) || (seq.charAt(i) > '9')) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /* --- BO receiver side --- */
+    static final class Receiver {
+        private final String   mWatchDir;
+        private final String[] mChannels;
+        private final long     mEpoch = System.currentTimeMillis();
+        private int            mWindow;
+        private long           mEvictMillis = System.currentTimeMillis();
+
+        // per SenderId
+        private final Map<String, SenderState> mSenders = new HashMap<>();
+
+        private static final class SenderState {
+            long mNext;         // next expected SeqNo, all below consumed
+            long mAdvertised;   // Limit the sender was given
+            long mAcceptLimit;  // highest Limit the sender may still hold
+            long mLastMillis;
+        }
+
+        Receiver(String watchDir, int window, String... channels) {
+            mWatchDir = watchDir;
+            mWindow   = window;
+            mChannels = channels;
+        }
+
+        // (re)write CREDIT|Initial|Epoch, stale sender credits are removed.
+        synchronized void open() throws IOException {
+            deleteSenderCredits();
+            mSenders.clear();
+            writeCtl(Paths.get(mWatchDir, CREDITFILE + CTLEXT),
+                    CREDIT + "|" + getInitial() + "|" + mEpoch);
+            Ilog.logFine("--- EO Receiver.open(" + mWatchDir + ") :: " + mWindow + " ---");
+        }
+
+        // remove all advertisements => senders fall back to plain files.
+        synchronized void close() {
+            try {
+                Files.deleteIfExists(Paths.get(mWatchDir, CREDITFILE + CTLEXT));
+                deleteSenderCredits();
+            } catch (IOException e) {
+                Ilog.logException("$$$ Receiver.close(FlowCredits) $$$ : " + mWatchDir, e);
+            }
+            mSenders.clear();
+        }
+
+        // a smaller window takes effect as the senders' SeqNo advance.
+        synchronized void setWindow(int window) throws IOException {
+            mWindow = window;
+            writeCtl(Paths.get(mWatchDir, CREDITFILE + CTLEXT),
+                    CREDIT + "|" + getInitial() + "|" + mEpoch);
+            for (Map.Entry<String, SenderState> entry : mSenders.entrySet()) {
+                advertise(entry.getKey(), entry.getValue());
+            }
+        }
+
+        synchronized int getWindow() {
+            return mWindow;
+        }
+
+        // sequenced files in the watch dir, by sender and SeqNo.
+        List<SeqName> scan() throws IOException {
+            List<SeqName> names = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+                    Paths.get(mWatchDir), "*" + WATCHEXT)) {
+                for (Path file : stream) {
+                    SeqName name = SeqName.parse(file.getFileName().toString(), mChannels);
+                    if (name != null) {
+                        names.add(name);
+                    }
+                }
+            }
+            Collections.sort(names, new Comparator<SeqName>() {
+                @Override
+                public int compare(SeqName a, SeqName b) {
+                    int cmp = a.mSender.compareTo(b.mSender);
+                    return (cmp != 0) ? cmp : Long.compare(a.mSeq, b.mSeq);
+                }
+            });
+            return names;
+        }
+
+        // the existing file of SeqNo seq of sender, null if there is none.
+        SeqName find(String sender, long seq) {
+            for (String channel : mChannels) {
+                SeqName name = new SeqName(channel, sender, seq);
+                if (Files.exists(Paths.get(mWatchDir, name.mFileName))) {
+                    return name;
+                }
+            }
+            return null;
+        }
+
+        // next expected SeqNo of the sender; an unknown sender starts at
+        // the oldest of its files in front of name.
+        synchronized long next(SeqName name) {
+            SenderState state = mSenders.get(name.mSender);
+            if (state == null) {
+                long base = name.mSeq;
+                while ((base > 0) && (name.mSeq - base < mWindow)
+                        && (find(name.mSender, base - 1) != null)) {
+                    base--;
+                }
+                state = new SenderState();
+                state.mNext        = base;
+                state.mAdvertised  = base + getInitial();
+                state.mAcceptLimit = base + Math.max(mWindow, getInitial());
+                state.mLastMillis  = System.currentTimeMillis();
+                mSenders.put(name.mSender, state);
+            }
+            return state.mNext;
+        }
+
+        // true if SeqNo lies inside the sender's current window.
+        synchronized boolean accept(SeqName name) {
+            SenderState state = mSenders.get(name.mSender);
+            return (state != null) && (name.mSeq >= state.mNext)
+                    && (name.mSeq < state.mAcceptLimit);
+        }
+
+        // SeqNo handed over ( or reported lost ) :: replenish in half window steps.
+        synchronized void consumed(String sender, long seq) throws IOException {
+            SenderState state = mSenders.get(sender);
+            if ((state == null) || (seq != state.mNext)) {
+                return;  // never pass a SeqNo which is not consumed
+            }
+            state.mNext = seq + 1;
+            state.mLastMillis = System.currentTimeMillis();
+            long grant = getGrant(sender);
+            if (state.mNext + grant - state.mAdvertised >= Math.max(1, grant / 2)) {
+                advertise(sender, state);
+            }
+            evictIdle(state.mLastMillis);
+        }
+
+        private int getInitial() {
+            return Math.max(1, Math.min(mWindow, INITIALCREDITS));
+        }
+
+        // credits for one sender :: window, but all together <= MAXCREDITS
+        private long getGrant(String sender) {
+            long others = 0;
+            for (Map.Entry<String, SenderState> entry : mSenders.entrySet()) {
+                if (!entry.getKey().equals(sender)) {
+                    others += Math.max(0, entry.getValue().mAdvertised - entry.getValue().mNext);
+                }
+            }
+            return Math.max(1, Math.min(mWindow, MAXCREDITS - others));
+        }
+
+        private void advertise(String sender, SenderState state) throws IOException {
+            long limit = Math.max(state.mAdvertised, state.mNext + getGrant(sender));
+            writeCtl(Paths.get(mWatchDir, CREDITFILE + "." + sender + CTLEXT),
+                    CREDIT + "|" + limit + "|" + mWindow + "|" + mEpoch);
+            state.mAdvertised  = limit;
+            state.mAcceptLimit = Math.max(state.mAcceptLimit, limit);
+        }
+
+        // forget senders without a message for SENDERIDLEMS.
+        private void evictIdle(long nowMillis) {
+            if (nowMillis - mEvictMillis < SENDERIDLEMS / 10) {
+                return;
+            }
+            mEvictMillis = nowMillis;
+            Iterator<Map.Entry<String, SenderState>> it = mSenders.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, SenderState> entry = it.next();
+                if (nowMillis - entry.getValue().mLastMillis > SENDERIDLEMS) {
+                    it.remove();
+                    try {
+                        Files.deleteIfExists(Paths.get(mWatchDir,
+                                CREDITFILE + "." + entry.getKey() + CTLEXT));
+                    } catch (IOException e) {
+                        Ilog.logException("$$$ Receiver.evictIdle $$$ : " + entry.getKey(), e);
+                    }
+                }
+            }
+        }
+
+        private void deleteSenderCredits() throws IOException {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+                    Paths.get(mWatchDir), CREDITFILE + ".*" + CTLEXT)) {
+                for (Path ctl : stream) {
+                    Files.deleteIfExists(ctl);
+                }
+            }
+        }
+    }
+    /* --- EO receiver side --- */
+
+    /* --- BO sender side --- */
+    static final class Sender {
+        private final String mId;
+
+        // per destination dir
+        private final Map<String, Dest> mDests = new HashMap<>();
+
+        private static final class Dest {
+            long mEpoch;
+            long mNextSeq;
+            long mLimit;
+            long mLastNanos;
+            long mStallStartNanos = -1;
+        }
+
+        private long mStalls     = 0;
+        private long mStallNanos = 0;
+
+        Sender() {
+            mId = Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, 36);
+        }
+
+        /**
+         * Sends payload as next sequenced file if dir advertises credits,
+         * deflated above compressThreshold bytes ( 0 = off, see PayloadCodec ).
+         * @return SENT, PLAIN (no FlowCredits.ctl => caller writes plain),
+         *         FULL  (window used up, nothing written).
+         */
+        synchronized int send(String dir, String type, String payload, int compressThreshold)
+                throws IOException {
+            long[] general = readCtl(Paths.get(dir, CREDITFILE + CTLEXT), 2);
+            if (general == null) {
+                endStall(mDests.remove(dir));
+                return PLAIN;
+            }
+            // CREDIT|Initial|Epoch :: new Epoch => new credit space
+            Dest dest = mDests.get(dir);
+            if ((dest == null) || (dest.mEpoch != general[1])) {
+                endStall(dest);
+                dest = new Dest();
+                dest.mEpoch = general[1];
+                dest.mLimit = general[0];
+                mDests.put(dir, dest);
+            }
+            if (dest.mNextSeq >= dest.mLimit) {
+                // CREDIT|Limit|Window|Epoch
+                long[] own = null;
+                try {
+                    own = readCtl(Paths.get(dir, CREDITFILE + "." + mId + CTLEXT), 3);
+                } catch (IOException e) {
+                    Ilog.logException("$$$ Sender.send(own credits) $$$ : " + dir, e);
+                }
+                if ((own != null) && (own[2] == dest.mEpoch)) {
+                    dest.mLimit = Math.max(dest.mLimit, own[0]);
+                } else if ((own == null)
+                        && (System.nanoTime() - dest.mLastNanos > SENDERIDLEMS * 1000000L)) {
+                    // idle sender forgotten by the receiver :: Initial credits again
+                    dest.mLimit = dest.mNextSeq + general[0];
+                }
+                if (dest.mNextSeq >= dest.mLimit) {
+                    // one stall per used up window, not per refused message
+                    if (dest.mStallStartNanos < 0) {
+                        dest.mStallStartNanos = System.nanoTime();
+                        mStalls++;
+                    }
+                    return FULL;
+                }
+            }
+            endStall(dest);
+            String base = type.substring(0, type.length() - WATCHEXT.length())
+                    + "." + mId + "." + dest.mNextSeq;
+            Path watchFile = Paths.get(dir, base + WATCHEXT);
+            if (Files.exists(watchFile)) {
+                throw new IOException("not yet consumed : " + watchFile);
+            }
+            Path tmp = getTmpDir(Paths.get(dir)).resolve(base + TMPEXT);
+            // a sidecar blob is in place before the '.watch' file appears
+            try (OutputStreamWriter writer = new OutputStreamWriter(
+                    Files.newOutputStream(tmp), StandardCharsets.UTF_8)) {
+                writer.write(PayloadCodec.encode(watchFile, payload, compressThreshold));
+            } catch (IOException e) {
+                PayloadCodec.deleteBlob(watchFile);
+                Files.deleteIfExists(tmp);
+                throw e;
+            }
+            Files.move(tmp, watchFile, StandardCopyOption.ATOMIC_MOVE);
+            dest.mNextSeq++;
+            dest.mLastNanos = System.nanoTime();
+            Ilog.logFine("--- EO Sender.send(" + base + ") ---");
+            return SENT;
+        }
+
+        // number of stalls ( used up windows ) over all destinations
+        synchronized long getStallCount() {
+            return mStalls;
+        }
+
+        // ms with used up window, including running stalls
+        synchronized long getStallMillis() {
+            long nanos = mStallNanos;
+            long now = System.nanoTime();
+            for (Dest dest : mDests.values()) {
+                if (dest.mStallStartNanos >= 0) {
+                    nanos += now - dest.mStallStartNanos;
+                }
+            }
+            return nanos / 1000000L;
+        }
+
+        private void endStall(Dest dest) {
+            if ((dest != null) && (dest.mStallStartNanos >= 0)) {
+                mStallNanos += System.nanoTime() - dest.mStallStartNanos;
+                dest.mStallStartNanos = -1;
+            }
+        }
+    }
+    /* --- EO sender side --- */
+
+    // '.tmp' files outside of the watched dir :: no watch events for them.
+    static Path getTmpDir(Path dir) throws IOException {
+        Path tmpDir = dir.resolve(TMPDIR);
+        if (!Files.isDirectory(tmpDir)) {
+            Files.createDirectories(tmpDir);
+        }
+        return tmpDir;
+    }
+
+    // write a control file ( tmp & rename ).
+    private static void writeCtl(Path ctl, String text) throws IOException {
+        Path tmp = getTmpDir(ctl.getParent()).resolve(ctl.getFileName() + TMPEXT);
+        try (OutputStreamWriter writer = new OutputStreamWriter(
+                Files.newOutputStream(tmp), StandardCharsets.UTF_8)) {
+            writer.write(text);
+        }
+        Files.move(tmp, ctl,
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // CREDIT|n1|..|nCount => { n1, .. } ; null if missing.
+    private static long[] readCtl(Path ctl, int count) throws IOException {
+        if (!Files.exists(ctl)) {
+            return null;
+        }
+        try (BufferedReader bufRead = Files.newBufferedReader(ctl, StandardCharsets.UTF_8)) {
+            String input = bufRead.readLine();
+            String[] split = (input == null) ? new String[0] : input.split("\\|");
+            if ((split.length != count + 1) || !CREDIT.equals(split[0])) {
+                throw new IOException("invalid control file " + ctl + " : " + input);
+            }
+            long[] values = new long[count];
+            for (int i = 0; i < count; i++) {
+                values[i] = Long.parseLong(split[i + 1]);
+            }
+            return values;
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid control file " + ctl, e);
+        }
+    }
+
+}
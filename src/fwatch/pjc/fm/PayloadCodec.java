@@ -0,0 +1,228 @@
+package fwatch.pjc.fm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Optional payload compression with a sidecar blob:
+ * -----------------------------------------------------------------------------
+ * A receiver advertises the codecs it can decode in 'Codecs.ctl' of its
+ * watch dir ::  CODECS|deflate .
+ *
+ * Above the send threshold (SetCompressThreshold, 0 = off) a flow controlled
+ * sender ( see FlowControl ) deflates the payload ( ACTION|Para1|..|ParaN )
+ * into a sidecar blob named like its sequenced '.watch' file
+ *   Action2Forms.<SenderId>.<SeqNo>.blob   ( written as '.tmp' and renamed )
+ * and writes only a small header into the '.watch' file :
+ *   #FWZ1|deflate|RawLength|CRC32      ( 0 < RawLength <= MAXRAWLENGTH ) .
+ * The receiver inflates the blob, checks length and CRC32 and deletes it.
+ * A plain sequenced payload starting with '#FWZ0|' or '#FWZ1|' is escaped
+ * as '#FWZ0|' + payload, the receiver strips the escape again.
+ *
+ * Plain 'Action2Forms.watch' files and destinations without 'Codecs.ctl'
+ * always get plain text, so plain peers keep working.
+ * -----------------------------------------------------------------------------
+ */
+final class PayloadCodec {
+
+    static final String CODECFILE = "Codecs.ctl";
+    static final String CODECS    = "CODECS";
+    static final String DEFLATE   = "deflate";
+    static final String HEADER    = "#FWZ1";
+    static final String ESCAPE    = "#FWZ0";
+
+    private static final String WATCHEXT = ".watch";
+    private static final String BLOBEXT  = ".blob";
+    private static final String TMPEXT   = ".tmp";
+    private static final int    BUFSIZE  = 8192;
+
+    // largest payload sent as blob, bigger headers are rejected unread
+    static final int MAXRAWLENGTH = 16 * 1024 * 1024;
+
+    // receiver :: reused per watcher thread, released by end()
+    private Inflater       mInflater = null;
+    private final CRC32    mCrc      = new CRC32();
+    private byte[]         mBuffer   = new byte[BUFSIZE];
+
+    /* --- BO receiver side --- */
+
+    static void advertise(String watchDir) {
+        try {
+            Files.write(Paths.get(watchDir, CODECFILE),
+                    (CODECS + "|" + DEFLATE).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Ilog.logException("$$$ advertise(Codecs.ctl) $$$ : " + watchDir, e);
+        }
+    }
+
+    static void withdraw(String watchDir) {
+        try {
+            Files.deleteIfExists(Paths.get(watchDir, CODECFILE));
+        } catch (IOException e) {
+            Ilog.logException("$$$ withdraw(Codecs.ctl) $$$ : " + watchDir, e);
+        }
+    }
+
+    /**
+     * Returns the plain payload for the first line of a '.watch' file.
+     * Every malformed header or blob is an IOException for this message,
+     * nothing is allocated before the header has been checked.
+     * @param watchFile  the notification file, its sidecar is '.blob'
+     * @param input      first line of watchFile, plain text or header
+     */
+    synchronized String decode(Path watchFile, String input) throws IOException {
+        if ((input != null) && input.startsWith(ESCAPE + "|")) {
+            return input.substring(ESCAPE.length() + 1);
+        }
+        if ((input == null) || !input.startsWith(HEADER + "|")) {
+            return input;
+        }
+        // #FWZ1|deflate|RawLength|CRC32
+        String[] split = input.split("\\|");
+        if ((split.length != 4) || !DEFLATE.equals(split[1])) {
+            throw new IOException("unknown payload header : " + input);
+        }
+        int rawLength;
+        long crc;
+        try {
+            rawLength = Integer.parseInt(split[2]);
+            crc = Long.parseLong(split[3]);
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid payload header : " + input, e);
+        }
+        if ((rawLength <= 0) || (rawLength > MAXRAWLENGTH) || (crc < 0) || (crc > 0xFFFFFFFFL)) {
+            throw new IOException("invalid payload header : " + input);
+        }
+        if (mBuffer.length < rawLength) {
+            mBuffer = new byte[Math.min(MAXRAWLENGTH, Math.max(rawLength, mBuffer.length * 2))];
+        }
+        if (mInflater == null) {
+            mInflater = new Inflater();
+        }
+        Path blob = getBlob(watchFile);
+        int count = 0;
+        mInflater.reset();
+        try (InputStream inp = new InflaterInputStream(
+                Files.newInputStream(blob), mInflater, BUFSIZE)) {
+            int n;
+            while ((count < rawLength) &&
+                   ((n = inp.read(mBuffer, count, rawLength - count)) > 0)) {
+                count += n;
+            }
+        }
+        mCrc.reset();
+        mCrc.update(mBuffer, 0, count);
+        if ((count != rawLength) || (mCrc.getValue() != crc)) {
+            throw new IOException("payload checksum mismatch : " + blob);
+        }
+        Files.deleteIfExists(blob);
+        Ilog.logFine("--- EO decode(" + blob + ") :: " + rawLength + " ---");
+        return new String(mBuffer, 0, count, StandardCharsets.UTF_8);
+    }
+
+    // watcher stopped :: release the native inflater and the large buffer.
+    synchronized void end() {
+        if (mInflater != null) {
+            mInflater.end();
+            mInflater = null;
+        }
+        mBuffer = new byte[BUFSIZE];
+    }
+
+    // undecodable message :: its sidecar goes with the '.watch' file.
+    static void deleteBlob(Path watchFile) {
+        try {
+            Files.deleteIfExists(getBlob(watchFile));
+        } catch (IOException e) {
+            Ilog.logException("$$$ deleteBlob $$$ : " + watchFile, e);
+        }
+    }
+    /* --- EO receiver side --- */
+
+    /* --- BO sender side --- */
+
+    /**
+     * Returns the text for the sequenced watchFile :: the (escaped) payload,
+     * or the header of the written sidecar blob if the payload exceeds the
+     * threshold ( bytes, 0 = off ) and the destination accepts deflate.
+     */
+    static String encode(Path watchFile, String payload, int threshold) throws IOException {
+        if ((threshold <= 0) || (payload.length() <= threshold / 3)) {
+            return plain(payload);  // UTF-8 needs max. 3 bytes per char
+        }
+        byte[] raw = payload.getBytes(StandardCharsets.UTF_8);
+        if ((raw.length <= threshold) || (raw.length > MAXRAWLENGTH)
+                || !accepts(watchFile.getParent())) {
+            return plain(payload);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(raw, 0, raw.length);
+        Path blob = getBlob(watchFile);
+        Path tmp = FlowControl.getTmpDir(blob.getParent()).resolve(blob.getFileName() + TMPEXT);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (OutputStream out = new DeflaterOutputStream(
+                Files.newOutputStream(tmp), deflater, BUFSIZE)) {
+            out.write(raw);
+        } finally {
+            deflater.end();
+        }
+        Files.move(tmp, blob,
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Ilog.logFine("--- EO encode(" + watchFile + ") :: " + raw.length + " ---");
+        return HEADER + "|" + DEFLATE + "|" + raw.length + "|" + crc.getValue();
+    }
+
+    // a plain payload must not look like a header.
+    private static String plain(String payload) {
+        if (payload.startsWith(HEADER + "|") || payload.startsWith(ESCAPE + "|")) {
+            return ESCAPE + "|" + payload;
+        }
+        return payload;
+    }
+
+    // negotiated per destination dir :: Codecs.ctl lists deflate.
+    private static boolean accepts(Path dir) {
+        Path codecs = dir.resolve(CODECFILE);
+        if (!Files.exists(codecs)) {
+            return false;
+        }
+        try (BufferedReader bufRead = Files.newBufferedReader(codecs, StandardCharsets.UTF_8)) {
+            String input = bufRead.readLine();
+            if (input == null) {
+                return false;
+            }
+            String[] split = input.split("\\|");
+            for (int i = 1; i < split.length; i++) {
+                if (CODECS.equals(split[0]) && DEFLATE.equals(split[i])) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            Ilog.logException("$$$ accepts(Codecs.ctl) $$$ : " + codecs, e);
+        }
+        return false;
+    }
+    /* --- EO sender side --- */
+
+    // Action2Forms.<SenderId>.<SeqNo>.watch => Action2Forms.<SenderId>.<SeqNo>.blob
+    private static Path getBlob(Path watchFile) {
+        String fname = watchFile.getFileName().toString();
+        if (fname.endsWith(WATCHEXT)) {
+            fname = fname.substring(0, fname.length() - WATCHEXT.length());
+        }
+        return watchFile.resolveSibling(fname + BLOBEXT);
+    }
+
+}
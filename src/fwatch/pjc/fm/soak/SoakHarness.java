@@ -0,0 +1,517 @@
+package fwatch.pjc.fm.soak;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import fwatch.pjc.fm.FileWatcherPJC;
+import oracle.forms.handler.IHandler;
+import oracle.forms.properties.ID;
+
+/**
+ * Headless load-and-soak harness for the File Watcher PJC:
+ * -----------------------------------------------------------------------------
+ * Runs a FileWatcherPJC bean against a stand-in IHandler (a dynamic proxy
+ * which only records the "GetActionParas" / "GetResultParas" / "GetMsg"
+ * properties) and lets N simulated OTHERS peers write sequence-numbered
+ * Action2Forms.watch / Result2Forms.watch files at a target rate :
+ *   PEERn =>  [tmp/formswatch/forms] => FORMS(bean) => stand-in IHandler .
+ *
+ * Payload format :: SOAK|PeerId|SeqNo|SentNanos[|Padding] .
+ * SentNanos is the scheduled send time, so a peer falling behind its rate
+ * shows its backlog in the latency ( no coordinated omission ).
+ *
+ * The harness touches 'SoakProbe.watch' until the bean reports it, before
+ * the load ( watch dir registered ) and after the drain ( watcher alive ).
+ *
+ * With soak.sender=bean every peer is an independent sending FileWatcherPJC
+ * using SendAction2Forms / SendResult2Forms ( sendFile() ), so each peer has
+ * its own flow control sender ( see FlowControl ). A message refused with
+ * "window full" is retried until the drain phase, then counted as lost.
+ * With soak.compress=bytes these sending beans deflate larger payloads into
+ * sidecar blobs ( SetCompressThreshold, see PayloadCodec ).
+ *
+ * At the end it reports scheduled / delivered / lost / duplicated / corrupt
+ * counts, OVERFLOW events, the watcher state, '.watch' files left in the
+ * watch dir and the p50/p99/p999 delivery latency.
+ *
+ * Configuration per system properties, e.g. :
+ *   java -Djava.awt.headless=true -Dsoak.peers=4 -Dsoak.rate=100
+ *        -Dsoak.seconds=300 -cp frmall.jar:FormsFileWatcherPJC-soak.jar
+ *        fwatch.pjc.fm.soak.SoakHarness
+ *
+ *   soak.peers   :: number of simulated OTHERS peers      (default 2)
+ *   soak.rate    :: messages per second per peer          (default 50)
+ *   soak.seconds :: duration of the load phase            (default 60)
+ *   soak.drain   :: ms to wait for late events after load (default 2000)
+ *   soak.subdir  :: watched sub directory of the bean     (default forms)
+ *   soak.dir     :: temp root, replaces java.io.tmpdir    (default new temp dir)
+ *   soak.sender  :: file = raw writes, bean = own sending bean (default file)
+ *   soak.window  :: receive window of the bean, flow control (default 0 = off)
+ *   soak.pad     :: padding chars appended to each payload (default 0)
+ *   soak.compress:: sending beans' compress threshold bytes (default 0 = off)
+ *
+ * The harness is not part of the PJC jar ( see dist.archive.excludes ).
+ * -----------------------------------------------------------------------------
+ */
+public final class SoakHarness {
+
+    private static final String SOAKACTION  = "SOAK";
+    private static final String OVERFLOWMSG = "$$$ File event overflow $$$";
+    private static final String PROBEFILE   = "SoakProbe.watch";
+    private static final String PROBEMSG    = "File-modified::" + PROBEFILE;
+    private static final long   PROBEMS     = 10000;
+    private static final String WINDOWFULLMSG = "$$$ Flow window full $$$";
+
+    /* watcher files (same names as in FileWatcherPJC) */
+    private static final String ACTION2FORMS = "Action2Forms.watch";
+    private static final String RESULT2FORMS = "Result2Forms.watch";
+    private static final String EOSERVICE    = "EOwatchService.watch";
+    private static final String FORMSTEMPDIR = "formswatch";
+
+    private final int    mPeers;
+    private final int    mRate;
+    private final int    mSeconds;
+    private final int    mDrainMs;
+    private final String mSubDir;
+    private final Path   mRootDir;
+    private final boolean mBeanSender;
+    private final String  mWindow;
+    private final int     mPad;
+    private final String  mPadding;
+    private final int     mCompress;
+
+    private final Recorder mRecorder;
+
+    private SoakHarness(int peers, int rate, int seconds, int drainMs,
+                        String subDir, Path rootDir, boolean beanSender, String window,
+                        int pad, int compress) {
+        mPeers   = peers;
+        mRate    = rate;
+        mSeconds = seconds;
+        mDrainMs = drainMs;
+        mSubDir  = subDir;
+        mRootDir = rootDir;
+        mBeanSender = beanSender;
+        mWindow  = window;
+        mPad     = pad;
+        mCompress = compress;
+        char[] padding = new char[Math.max(0, pad)];
+        Arrays.fill(padding, 'x');
+        mPadding = (pad > 0) ? "|" + new String(padding) : "";
+        mRecorder = new Recorder(peers);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("java.awt.headless") == null) {
+            System.setProperty("java.awt.headless", "true");
+        }
+        String dir = System.getProperty("soak.dir");
+        Path rootDir = (dir != null) ? Paths.get(dir)
+                                     : Files.createTempDirectory("fwsoak");
+        SoakHarness harness = new SoakHarness(
+                Integer.getInteger("soak.peers", 2),
+                Integer.getInteger("soak.rate", 50),
+                Integer.getInteger("soak.seconds", 60),
+                Integer.getInteger("soak.drain", 2000),
+                System.getProperty("soak.subdir", "forms"),
+                rootDir,
+                "bean".equals(System.getProperty("soak.sender", "file")),
+                System.getProperty("soak.window"),
+                Integer.getInteger("soak.pad", 0),
+                Integer.getInteger("soak.compress", 0));
+        harness.run();
+    }
+
+    private void run() throws InterruptedException, IOException {
+        // the bean builds its watch dir from java.io.tmpdir !
+        System.setProperty("java.io.tmpdir", mRootDir.toString());
+        Path watchDir = mRootDir.resolve(FORMSTEMPDIR).resolve(mSubDir);
+
+        FileWatcherPJC bean = new FileWatcherPJC();
+        bean.init(mRecorder.newHandler());
+        if (mWindow != null) {
+            bean.setProperty(FileWatcherPJC.SETFLOWWINDOW, mWindow);
+        }
+        bean.setProperty(FileWatcherPJC.SETSTARTSERVER, mSubDir);
+        if (!probeWatcher(watchDir)) {
+            throw new IllegalStateException("watch dir not registered: " + watchDir);
+        }
+        if ((mCompress > 0) && !mBeanSender) {
+            System.out.println("--- soak.compress ignored :: needs soak.sender=bean ---");
+        }
+
+        System.out.println("--- soak BO :: dir=" + watchDir + " peers=" + mPeers
+                + " rate=" + mRate + "/s/peer seconds=" + mSeconds
+                + " sender=" + (mBeanSender ? "bean" : "file") + " window=" + bean.getProperty(FileWatcherPJC.FLOWWINDOW)
+                + " pad=" + mPad
+                + " compress=" + mCompress
+                + " ---");
+
+        Peer[] peers = new Peer[mPeers];
+        Thread[] threads = new Thread[mPeers];
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < mPeers; i++) {
+            peers[i] = new Peer(i, watchDir, startNanos);
+            threads[i] = new Thread(peers[i], "SoakPeer" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long loadNanos = System.nanoTime() - startNanos;
+
+        // late events still in the watch queue
+        Thread.sleep(mDrainMs);
+        boolean alive = probeWatcher(watchDir);
+        int leftFiles = countLeftFiles(watchDir);
+        bean.setProperty(FileWatcherPJC.SETKILLSERVER, "");
+
+        report(peers, loadNanos, alive, leftFiles);
+    }
+
+    // touch the probe file until the bean reports it :: false if it never does
+    private boolean probeWatcher(Path watchDir) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROBEMS);
+        long probes = mRecorder.getProbes();
+        while (System.nanoTime() < deadline) {
+            if (Files.isDirectory(watchDir)) {
+                try {
+                    Files.write(watchDir.resolve(PROBEFILE), new byte[] { 'x' });
+                } catch (IOException e) {
+                    // watcher not ready, next round
+                }
+            }
+            if (mRecorder.awaitProbe(probes, 200)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // '.watch' files still waiting for the bean ( plain files are overwritten )
+    private static int countLeftFiles(Path watchDir) throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(watchDir, "*.watch")) {
+            for (Path file : stream) {
+                String fname = file.getFileName().toString();
+                if (!ACTION2FORMS.equals(fname) && !RESULT2FORMS.equals(fname)
+                        && !EOSERVICE.equals(fname) && !PROBEFILE.equals(fname)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private void report(Peer[] peers, long loadNanos, boolean alive, int leftFiles) {
+        long sent = 0;
+        long notSent = 0;
+        long stalls = 0;
+        long stallMillis = 0;
+        for (Peer peer : peers) {
+            // every scheduled message counts, not sent ones are lost
+            sent += peer.mSent;
+            notSent += peer.mWriteErrors + peer.mDropped;
+            if (peer.mSender != null) {
+                stalls += Long.parseLong(peer.mSender.getProperty(FileWatcherPJC.FLOWSTALLS));
+                stallMillis += Long.parseLong(peer.mSender.getProperty(FileWatcherPJC.FLOWSTALLTIME));
+            }
+        }
+        synchronized (mRecorder) {
+            long delivered = 0;
+            for (int i = 0; i < peers.length; i++) {
+                delivered += mRecorder.mSeen[i].cardinality();
+            }
+            long lost = sent - delivered;
+            long[] lat = Arrays.copyOf(mRecorder.mLatencies, mRecorder.mLatencyCount);
+            Arrays.sort(lat);
+
+            double seconds = loadNanos / 1e9;
+            System.out.println("--- soak EO ---");
+            System.out.printf("scheduled   : %d (%.1f msg/s, not sent %d)%n",
+                    sent, sent / seconds, notSent);
+            System.out.printf("delivered   : %d (%.1f msg/s)%n", delivered, delivered / seconds);
+            System.out.printf("lost        : %d (%.2f %%)%n", lost,
+                    sent == 0 ? 0.0 : 100.0 * lost / sent);
+            System.out.println("duplicated  : " + mRecorder.mDuplicated);
+            System.out.println("corrupt     : " + mRecorder.mCorrupt);
+            System.out.println("overflow    : " + mRecorder.mOverflow);
+            System.out.println("watcher     : " + (alive ? "alive" : "DEAD (probe not reported)"));
+            System.out.println("left files  : " + leftFiles);
+            System.out.println("other msgs  : " + mRecorder.mOtherMsgs);
+            System.out.printf("latency ms  : p50=%.3f p99=%.3f p999=%.3f max=%.3f%n",
+                    percentile(lat, 0.50) / 1e6, percentile(lat, 0.99) / 1e6,
+                    percentile(lat, 0.999) / 1e6,
+                    (lat.length == 0 ? 0 : lat[lat.length - 1]) / 1e6);
+            if (mBeanSender) {
+                System.out.printf("flow stalls : %d windows full (%d ms)%n",
+                        stalls, stallMillis);
+            }
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int idx = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(idx, sorted.length - 1))];
+    }
+
+    /* --- simulated OTHERS peer : raw file writes or an own sending bean --- */
+    private final class Peer implements Runnable {
+        private final int    mId;
+        private final Path   mWatchDir;
+        private final long   mStartNanos;
+        private final FileWatcherPJC mSender;
+        private final SenderMsgs     mSenderMsgs;
+        private volatile long mSent        = 0;
+        private volatile long mWriteErrors = 0;
+        private volatile long mDropped     = 0;
+
+        Peer(int id, Path watchDir, long startNanos) {
+            mId         = id;
+            mWatchDir   = watchDir;
+            mStartNanos = startNanos;
+            if (mBeanSender) {
+                mSenderMsgs = new SenderMsgs();
+                mSender = new FileWatcherPJC();
+                mSender.init(mSenderMsgs.newHandler());
+                if (mCompress > 0) {
+                    mSender.setProperty(FileWatcherPJC.SETCOMPRESSTHRESHOLD,
+                            Integer.toString(mCompress));
+                }
+            } else {
+                mSenderMsgs = null;
+                mSender = null;
+            }
+        }
+
+        @Override
+        public void run() {
+            long intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, mRate);
+            long endNanos = mStartNanos + TimeUnit.SECONDS.toNanos(mSeconds);
+            // spread the peers over one interval
+            long nextNanos = mStartNanos + intervalNanos * mId / Math.max(1, mPeers);
+            long giveUpNanos = endNanos + TimeUnit.MILLISECONDS.toNanos(mDrainMs) / 2;
+            long seq = 0;
+            while (nextNanos < endNanos) {
+                long wait = nextNanos - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                String fname = (seq % 2 == 0) ? ACTION2FORMS : RESULT2FORMS;
+                try {
+                    if (mSender != null) {
+                        sendBean(fname, payload(mId, seq, nextNanos), giveUpNanos);
+                    } else {
+                        Path watchFile = mWatchDir.resolve(fname);
+                        String text = payload(mId, seq, nextNanos);
+                        OutputStreamWriter writer = new OutputStreamWriter(
+                                new FileOutputStream(watchFile.toFile()), "UTF-8");
+                        writer.write(text);
+                        writer.close();
+                    }
+                } catch (IOException e) {
+                    mWriteErrors++;
+                }
+                seq++;
+                mSent = seq;
+                nextNanos += intervalNanos;
+            }
+        }
+
+        // as Forms would :: retry a refused ( window full ) message
+        private void sendBean(String fname, String payload, long giveUpNanos) {
+            ID property = ACTION2FORMS.equals(fname) ? FileWatcherPJC.SENDACTION2FORMS
+                                                     : FileWatcherPJC.SENDRESULT2FORMS;
+            while (true) {
+                mSenderMsgs.clear();
+                mSender.setProperty(property, mSubDir + "|" + payload);
+                String msg = mSenderMsgs.get();
+                if (msg == null) {
+                    return;
+                } else if (!msg.startsWith(WINDOWFULLMSG)) {
+                    mWriteErrors++;
+                    return;
+                } else if (System.nanoTime() > giveUpNanos) {
+                    mDropped++;
+                    return;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+    }
+
+    private String payload(int peer, long seq, long sentNanos) {
+        return SOAKACTION + "|" + peer + "|" + seq + "|" + sentNanos + mPadding;
+    }
+
+    /* --- stand-in IHandler : only setProperty() is recorded --- */
+    private abstract static class StandIn implements InvocationHandler {
+
+        abstract void record(String property, Object value);
+
+        IHandler newHandler() {
+            return (IHandler) Proxy.newProxyInstance(IHandler.class.getClassLoader(),
+                    new Class<?>[] { IHandler.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if ("setProperty".equals(name) && args != null && args.length == 2
+                    && args[0] instanceof ID) {
+                record(((ID) args[0]).getName(), args[1]);
+                return defaultValue(method.getReturnType(), true);
+            } else if ("equals".equals(name) && args != null && args.length == 1) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name) && args == null) {
+                return System.identityHashCode(proxy);
+            } else if ("toString".equals(name) && args == null) {
+                return getClass().getName();
+            }
+            return defaultValue(method.getReturnType(), false);
+        }
+
+        private static Object defaultValue(Class<?> type, boolean bool) {
+            if (type == boolean.class) {
+                return bool;
+            } else if (type == int.class) {
+                return 0;
+            } else if (type == long.class) {
+                return 0L;
+            } else if (type == short.class) {
+                return (short) 0;
+            } else if (type == byte.class) {
+                return (byte) 0;
+            } else if (type == char.class) {
+                return (char) 0;
+            } else if (type == float.class) {
+                return 0f;
+            } else if (type == double.class) {
+                return 0d;
+            }
+            return null;
+        }
+    }
+
+    /* --- stand-in IHandler of a sending bean : last "GetMsg" --- */
+    private static final class SenderMsgs extends StandIn {
+        private volatile String mLastMsg;
+
+        @Override
+        void record(String property, Object value) {
+            if (FileWatcherPJC.GETMSG.getName().equalsIgnoreCase(property)) {
+                mLastMsg = String.valueOf(value);
+            }
+        }
+
+        void clear() {
+            mLastMsg = null;
+        }
+
+        String get() {
+            return mLastMsg;
+        }
+    }
+
+    /* --- stand-in IHandler : records what the bean hands over to Forms --- */
+    private static final class Recorder extends StandIn {
+        private final BitSet[] mSeen;
+        private long[]         mLatencies;
+        private int            mLatencyCount = 0;
+        private long           mDuplicated   = 0;
+        private long           mCorrupt      = 0;
+        private long           mOverflow     = 0;
+        private long           mOtherMsgs    = 0;
+        private long           mProbes       = 0;
+
+        Recorder(int peers) {
+            mSeen = new BitSet[peers];
+            for (int i = 0; i < peers; i++) {
+                mSeen[i] = new BitSet();
+            }
+            // grown on demand in record()
+            mLatencies = new long[1024];
+        }
+
+        synchronized long getProbes() {
+            return mProbes;
+        }
+
+        // true if a probe newer than seen got reported within ms
+        synchronized boolean awaitProbe(long seen, long ms) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ms);
+            long wait;
+            while ((mProbes <= seen) && ((wait = deadline - System.nanoTime()) > 0)) {
+                TimeUnit.NANOSECONDS.timedWait(this, wait);
+            }
+            return mProbes > seen;
+        }
+
+        @Override
+        synchronized void record(String property, Object value) {
+            long nowNanos = System.nanoTime();
+            String paras = (value == null) ? "" : value.toString();
+            if (FileWatcherPJC.GETMSG.getName().equalsIgnoreCase(property)) {
+                if (paras.startsWith(OVERFLOWMSG)) {
+                    mOverflow++;
+                } else if (PROBEMSG.equals(paras)) {
+                    mProbes++;
+                    notifyAll();
+                } else {
+                    mOtherMsgs++;
+                }
+                return;
+            }
+            if (!FileWatcherPJC.GETACTIONPARAS.getName().equalsIgnoreCase(property)
+                    && !FileWatcherPJC.GETRESULTPARAS.getName().equalsIgnoreCase(property)) {
+                return;
+            }
+            // SOAK|PeerId|SeqNo|SentNanos
+            String[] split = paras.split("\\|");
+            if (split.length < 4 || !SOAKACTION.equals(split[0])) {
+                mCorrupt++;
+                return;
+            }
+            int peer;
+            int seq;
+            long sentNanos;
+            try {
+                peer = Integer.parseInt(split[1]);
+                seq = Integer.parseInt(split[2]);
+                sentNanos = Long.parseLong(split[3]);
+            } catch (NumberFormatException e) {
+                mCorrupt++;
+                return;
+            }
+            if (peer < 0 || peer >= mSeen.length || seq < 0) {
+                mCorrupt++;
+                return;
+            }
+            if (mSeen[peer].get(seq)) {
+                mDuplicated++;
+                return;
+            }
+            mSeen[peer].set(seq);
+            if (mLatencyCount == mLatencies.length) {
+                mLatencies = Arrays.copyOf(mLatencies, mLatencies.length * 2);
+            }
+            mLatencies[mLatencyCount++] = nowNanos - sentNanos;
+        }
+    }
+
+}